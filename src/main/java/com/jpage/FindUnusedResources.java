@@ -1,9 +1,17 @@
 package com.jpage;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Find and remove unused resources in an Android project.
@@ -14,19 +22,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class FindUnusedResources {
 
+    private static final int ACTION_WHY = 5;
     private static final int ACTION_EXIT = 4;
     private static final int ACTION_PRINT_ALL = 3;
     private static final int ACTION_PRINT_UNUSED = 1;
     private static final int ACTION_DELETE = 2;
 
     // each map below contains ALL indexed resources for that particular type (string/color/etc) and a reference count
-    private static Map<String, AtomicInteger> mStringMap = new TreeMap<>();
-    private static Map<String, AtomicInteger> mDimenMap = new TreeMap<>();
-    private static Map<String, AtomicInteger> mColorMap = new TreeMap<>();
-    private static Map<String, AtomicInteger> mStringArrayMap = new TreeMap<>();
-    private static Map<String, AtomicInteger> mDrawableMap = new TreeMap<>();
-    private static Map<String, AtomicInteger> mLayoutMap = new TreeMap<>();
-    private static Map<String, AtomicInteger> mStylesMap = new TreeMap<>();
+    // NOTE: maps are sorted so all resources starting with a given prefix can be found quickly (see markPrefixUsed)
+    private static NavigableMap<String, AtomicInteger> mStringMap = new TreeMap<>();
+    private static NavigableMap<String, AtomicInteger> mDimenMap = new TreeMap<>();
+    private static NavigableMap<String, AtomicInteger> mColorMap = new TreeMap<>();
+    private static NavigableMap<String, AtomicInteger> mStringArrayMap = new TreeMap<>();
+    private static NavigableMap<String, AtomicInteger> mDrawableMap = new TreeMap<>();
+    private static NavigableMap<String, AtomicInteger> mLayoutMap = new TreeMap<>();
+    private static NavigableMap<String, AtomicInteger> mStylesMap = new TreeMap<>();
 
     private static List<String> deletedFileList = new ArrayList<>();
 
@@ -42,56 +52,146 @@ public class FindUnusedResources {
 
     private static String[] EXCLUDE_FILES = {"analytics.xml"};
 
-    private static final String TMP_FIND_UNUSED_RESOURCES = "/tmp/FindUnusedResources/";
+    // dynamic lookup by name: getResources().getIdentifier("flag_" + code, "drawable", pkg)
+    private static final String GET_IDENTIFIER = "getIdentifier(";
+
+    // resources to always keep; <type>/<name> or <type>/<prefix>* (ie: drawable/flag_*)
+    private static List<String> mKeepPatterns = new ArrayList<>();
+
+    // deleted files are backed up here (same folder structure as the project); tests point this at a temp folder
+    static String mBackupPath = "/tmp/FindUnusedResources/";
 
     private static Map<String, Integer> mTotalRemovedMap = new HashMap<>();
 
     private static long mLastUpdateMs;
     private static String mRootPath;
 
+    // bounded-memory mode: max # of references (resource, file, line) held in the reverse index (see mWhy*) before
+    // they're spilled to disk as a sorted run; 0 means unbounded
+    // NOTE: reference counts are always kept in the maps above; it's only the reverse index that grows with the project
+    static long mMaxHeapIndex = 0;
+    private static List<File> mWhyRunList = new ArrayList<>();
+    // max # of runs merged at once; more than this are merged in multiple rounds to limit open files
+    static final int MAX_MERGE_RUNS = 64;
+
+    // pipeline mode: directory walk -> read-ahead (I/O) threads -> matcher threads, connected by bounded queues
+    static boolean mIsPipeline = false;
+    private static int mNumIoThreads = 2;
+    private static int mNumMatchThreads = Runtime.getRuntime().availableProcessors();
+    private static final int PIPELINE_QUEUE_SIZE = 64;
+    private static final int PIPELINE_BUFFER_SIZE = 64 * 1024;
+    private static final File END_OF_FILES = new File("");
+    private static boolean mIsAnyMatch;
+
+    // shard mode: only search files in shard <mShardIndex> of <mShardCount> and write counts to a partial file
+    static int mShardIndex;
+    static int mShardCount;
+    static String mShardOutPath;
+    private static final String PARTIAL_FILE_HEADER = "# FindUnusedResources partial ";
+    private static final String PARTIAL_FILE_TYPES = "types=";
+    private static final String PARTIAL_FILE_EXT = ".refs";
+    private static final String PARTIAL_FILE_REFERENCES = "# references";
+    private static final String PARTIAL_FILE_FILES = "# files";
+    // --shard-why: also write where each reference was found so "merge --why" works (makes partial files bigger)
+    private static boolean mIsShardWhy = false;
+
+    // reverse index: every reference found this pass as 3 parallel columns (resource, file, line)
+    // resources and files are stored once in a table and referred to by index to keep each reference to 12 bytes
+    static boolean mIsWhyIndexEnabled = true;
+    private static Map<String, Integer> mWhyResourceTable = new HashMap<>();
+    private static List<String> mWhyResourceList = new ArrayList<>();
+    private static Map<String, Integer> mWhyFileTable = new HashMap<>();
+    private static List<String> mWhyFileList = new ArrayList<>();
+    private static int[] mWhyResourceColumn = new int[1024];
+    private static int[] mWhyFileColumn = new int[1024];
+    private static int[] mWhyLineColumn = new int[1024];
+    private static int mWhySize;
+    // after each search, columns are grouped by resource: references to resource i are rows
+    // mWhyResourceOffsets[i] .. mWhyResourceOffsets[i + 1] - 1; null until grouped
+    private static int[] mWhyResourceOffsets;
+    // bounded-memory mode, once anything was spilled: every reference merged into 1 file, sorted by resource
+    // <type>/<name><TAB><file><TAB><line>; mWhyIndexOffsetMap has where each resource starts and # of references
+    private static File mWhyIndexFile;
+    private static Map<String, long[]> mWhyIndexOffsetMap = new HashMap<>();
+
+    private static BufferedReader mStdinReader;
+
+    // --types: only index & search these types (ie: "string", "drawable"); null means all types
+    private static Set<String> mTypeSet;
+    // all types, in the order they're printed; also the index into mScanTimeNs
+    private static final String[] ALL_TYPES = {USE_STRING, USE_DIMEN, USE_COLOR, USE_STRING_ARRAY, USE_STYLES, USE_LAYOUT, USE_DRAWABLE};
+    // --types: time spent searching for each type this pass (nanoseconds); added to once per file
+    private static AtomicLongArray mScanTimeNs = new AtomicLongArray(ALL_TYPES.length);
+
+    // <type>/<name> of every resource removed, in order, with a "PASS <n>" line before each pass
+    static List<String> mRemovedResourceList = new ArrayList<>();
+
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (IllegalStateException e) {
+            // ie: a pipeline stage failed; the pass is incomplete and nothing was removed in it
+            System.out.println("\nERROR: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) {
         if (args.length == 0) {
             printUsage();
             System.exit(0);
         }
 
-        String root = args[0];
-
-        // make sure AndroidManifest.xml at root
-        File mainFile = new File(root + "/AndroidManifest.xml");
-        if (!mainFile.exists()) {
-            System.out.println("file: " + mainFile + " does not exist!\nBase directory should point to an Android project.");
-            printUsage();
-            System.exit(0);
+        if (args[0].equals("merge")) {
+            // combine partial files written by --shard runs
+            mergePartialFiles(args);
+            return;
+        } else if (args[0].equals("why")) {
+            // show where resources are referenced
+            findWhyUsed(args);
+            return;
         }
 
+        String root = args[0];
+        checkProjectPath(root);
+
         // get additional arguments
         List<String> additionalSearchPaths = new ArrayList<>();
-        boolean promptUser = true;
-        // check for "noprompt" as an argument
-        for (int i = 1; args.length > i; i++) {
-            String arg = args[i];
-            if (arg.equalsIgnoreCase("noprompt")) {
-                promptUser = false;
-            } else {
-                additionalSearchPaths.add(arg);
-            }
-        }
+        boolean promptUser = parseOptions(args, 1, additionalSearchPaths);
 
         // find any directories named "res" and index all resources inside
-        File parentFile = new File(root).getParentFile();
-        mRootPath = parentFile.getAbsolutePath();
-        System.out.println("Indexing resources...");
-        indexAllResources(parentFile, false);
+        indexResources(root);
+
+        if (mShardCount > 0) {
+            // only search this shard's files and save the reference counts for a later "merge"
+            writePartialFile(root, additionalSearchPaths);
+            return;
+        }
+
+        int totalRemoved = removeUnusedResources(root, additionalSearchPaths, promptUser);
+
+        if (totalRemoved > 0) {
+            System.out.println("DONE! Removed " + totalRemoved + " TOTAL resources");
+
+            Iterator<String> keyItor = mTotalRemovedMap.keySet().iterator();
+            while (keyItor.hasNext()) {
+                String key = keyItor.next();
+                Integer value = mTotalRemovedMap.get(key);
+                System.out.println("-> " + value + " " + key + " resources");
+            }
 
-        System.out.println("got " + mStringMap.size() + " " + USE_STRING + " resources");
-        System.out.println("got " + mDimenMap.size() + " " + USE_DIMEN + " resources");
-        System.out.println("got " + mColorMap.size() + " " + USE_COLOR + " resources");
-        System.out.println("got " + mStringArrayMap.size() + " " + USE_STRING_ARRAY + " resources");
-        System.out.println("got " + mStylesMap.size() + " " + USE_STYLES + " resources");
-        System.out.println("got " + mLayoutMap.size() + " " + USE_LAYOUT + " resources");
-        System.out.println("got " + mDrawableMap.size() + " " + USE_DRAWABLE + " resources");
+            System.out.println("-- FILES REMOVED --");
+            for (String filename : deletedFileList) {
+                System.out.println(filename);
+            }
+        }
+    }
 
+    /**
+     * search for uses of all indexed resources and remove the unused ones; repeats until nothing else is removed
+     * @return total number of resources removed
+     */
+    static int removeUnusedResources(String root, List<String> additionalSearchPaths, boolean promptUser) {
         // may need to loop a few times to find & delete all unused variables
         // for example, a drawable 'abc' may be referenced by a layout which isn't referenced in any code.
         // - the first pass will delete the layout and the second pass will delete the drawable
@@ -99,6 +199,12 @@ public class FindUnusedResources {
         for (int i = 1; true; i++) {
             System.out.print("\nPASS " + i);
 
+            // references are found again every pass
+            clearWhyIndex();
+
+            // resources matching a --keep pattern are always used
+            markKeepPatterns();
+
             // search root directory for resource usage
             int unused = findUnusedResources(root);
             if (unused == 0) {
@@ -137,10 +243,15 @@ public class FindUnusedResources {
                 }
                 if (command == ACTION_PRINT_ALL) {
                     printResources(false, false);
+                } else if (command == ACTION_WHY) {
+                    String resourceId = promptLine("enter <type>/<name> (ie: drawable/icon):");
+                    if (resourceId != null) {
+                        printWhy(resourceId);
+                    }
                 } else if (command == ACTION_EXIT) {
                     // STOP & exit!
                     System.exit(1);
-                    return;
+                    return 0;
                 }
             }
 
@@ -152,21 +263,513 @@ public class FindUnusedResources {
             totalRemoved += numRemoved;
         }
 
-        if (totalRemoved > 0) {
-            System.out.println("DONE! Removed " + totalRemoved + " TOTAL resources");
+        return totalRemoved;
+    }
 
-            Iterator<String> keyItor = mTotalRemovedMap.keySet().iterator();
-            while (keyItor.hasNext()) {
-                String key = keyItor.next();
-                Integer value = mTotalRemovedMap.get(key);
-                System.out.println("-> " + value + " " + key + " resources");
+    /**
+     * make sure AndroidManifest.xml at root
+     */
+    private static void checkProjectPath(String root) {
+        File mainFile = new File(root + "/AndroidManifest.xml");
+        if (!mainFile.exists()) {
+            System.out.println("file: " + mainFile + " does not exist!\nBase directory should point to an Android project.");
+            printUsage();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * parse options starting at args[start]; anything that isn't an option is added to pathList
+     * @return false if "noprompt" was passed
+     */
+    private static boolean parseOptions(String[] args, int start, List<String> pathList) {
+        boolean promptUser = true;
+        for (int i = start; args.length > i; i++) {
+            String arg = args[i];
+            if (arg.equalsIgnoreCase("noprompt")) {
+                promptUser = false;
+            } else if (arg.equals("--keep") && args.length > i + 1) {
+                String pattern = args[++i];
+                int pos = pattern.indexOf('/');
+                if (pos <= 0 || getMapForType(pattern.substring(0, pos)) == null) {
+                    System.out.println("invalid --keep: " + pattern + " (expected <type>/<name> or <type>/<prefix>*)");
+                    printUsage();
+                    System.exit(0);
+                }
+                mKeepPatterns.add(pattern);
+            } else if (arg.equals("--pipeline")) {
+                mIsPipeline = true;
+            } else if (arg.equals("--io-threads") && args.length > i + 1) {
+                mIsPipeline = true;
+                try {
+                    mNumIoThreads = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.out.println("invalid --io-threads: " + args[i]);
+                    printUsage();
+                    System.exit(0);
+                }
+            } else if (arg.equals("--max-heap-index") && args.length > i + 1) {
+                try {
+                    mMaxHeapIndex = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    System.out.println("invalid --max-heap-index: " + args[i]);
+                    printUsage();
+                    System.exit(0);
+                }
+            } else if (arg.equals("--shard") && args.length > i + 1) {
+                // i/N where 0 <= i < N
+                String shard = args[++i];
+                int pos = shard.indexOf('/');
+                try {
+                    mShardIndex = Integer.parseInt(shard.substring(0, Math.max(pos, 0)));
+                    mShardCount = Integer.parseInt(shard.substring(pos + 1));
+                } catch (NumberFormatException e) {
+                    mShardCount = 0;
+                }
+                if (mShardCount <= 0 || mShardIndex < 0 || mShardIndex >= mShardCount) {
+                    System.out.println("invalid --shard: " + shard + " (expected i/N where 0 <= i < N)");
+                    printUsage();
+                    System.exit(0);
+                }
+            } else if (arg.equals("--types") && args.length > i + 1) {
+                // comma separated list of types
+                mTypeSet = new HashSet<>();
+                for (String type : args[++i].split(",")) {
+                    type = type.trim();
+                    if (getMapForType(type) == null) {
+                        System.out.println("invalid --types: " + type + " (expected any of: " + USE_STRING + "," + USE_DIMEN + "," + USE_COLOR + "," + USE_STRING_ARRAY + "," + USE_STYLES + "," + USE_LAYOUT + "," + USE_DRAWABLE + ")");
+                        printUsage();
+                        System.exit(0);
+                    }
+                    mTypeSet.add(type.equals(USE_STRING_ARRAY_REFERENCE) ? USE_STRING_ARRAY : type);
+                }
+            } else if (arg.equals("--no-why")) {
+                mIsWhyIndexEnabled = false;
+            } else if (arg.equals("--shard-out") && args.length > i + 1) {
+                mShardOutPath = args[++i];
+            } else if (arg.equals("--shard-why")) {
+                mIsShardWhy = true;
+            } else {
+                pathList.add(arg);
             }
+        }
+        if (mShardCount > 0 && !mIsShardWhy) {
+            // shards only write counts unless asked for references
+            mIsWhyIndexEnabled = false;
+        }
+        return promptUser;
+    }
 
-            System.out.println("-- FILES REMOVED --");
-            for (String filename : deletedFileList) {
-                System.out.println(filename);
+    /**
+     * find any directories named "res" and index all resources inside
+     */
+    static void indexResources(String root) {
+        File parentFile = new File(root).getParentFile();
+        mRootPath = parentFile.getAbsolutePath();
+        System.out.println("Indexing resources...");
+        indexAllResources(parentFile, false);
+
+        for (String type : ALL_TYPES) {
+            if (isTypeEnabled(type)) {
+                System.out.println("got " + getMapForType(type).size() + " " + type + " resources");
+            }
+        }
+    }
+
+    /**
+     * @return --types as a sorted, comma separated list (ie: "drawable,string") or "all"
+     */
+    private static String getTypesText() {
+        if (mTypeSet == null) {
+            return "all";
+        }
+        return String.join(",", new TreeSet<>(mTypeSet));
+    }
+
+    /**
+     * @return true if type should be indexed & searched for (see --types)
+     */
+    private static boolean isTypeEnabled(String type) {
+        if (mTypeSet == null) {
+            return true;
+        } else if (type.equals(USE_STRING_ARRAY_REFERENCE)) {
+            type = USE_STRING_ARRAY;
+        }
+        return mTypeSet.contains(type);
+    }
+
+    /**
+     * @return index of type in ALL_TYPES
+     */
+    private static int getTypeIndex(String type) {
+        if (type.equals(USE_STRING_ARRAY_REFERENCE)) {
+            type = USE_STRING_ARRAY;
+        }
+        for (int i = 0; i < ALL_TYPES.length; i++) {
+            if (ALL_TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if any type defined in res/values*.xml files should be indexed & searched for
+     */
+    private static boolean isAnyValuesTypeEnabled() {
+        return isTypeEnabled(USE_STRING) || isTypeEnabled(USE_DIMEN) || isTypeEnabled(USE_COLOR) || isTypeEnabled(USE_STRING_ARRAY) || isTypeEnabled(USE_STYLES);
+    }
+
+    /**
+     * print time spent searching for each type this pass, then reset
+     */
+    private static void printScanTimes() {
+        if (mTypeSet == null) {
+            // only timed with --types
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ALL_TYPES.length; i++) {
+            if (isTypeEnabled(ALL_TYPES[i])) {
+                sb.append(sb.length() > 0 ? ", " : "").append(ALL_TYPES[i]).append(' ').append(mScanTimeNs.getAndSet(i, 0) / 1000000).append("ms");
+            }
+        }
+        System.out.println("search time: " + sb);
+    }
+
+    /**
+     * @return true if file should be searched by this shard (always true when not sharding)
+     * NOTE: based on the path relative to the project so every machine picks the same files
+     */
+    private static boolean isInShard(File file) {
+        if (mShardCount <= 1) {
+            return true;
+        }
+        Path rootPath = new File(mRootPath).toPath().normalize();
+        String relativePath = rootPath.relativize(file.getAbsoluteFile().toPath().normalize()).toString().replace('\\', '/');
+        return Math.floorMod(relativePath.hashCode(), mShardCount) == mShardIndex;
+    }
+
+    /**
+     * shard mode: search this shard's files (1 pass) and write the reference counts to a partial file:
+     * # FindUnusedResources partial <i>/<N> types=<--types or "all">
+     * <type>/<name><TAB><# of references>
+     * with --shard-why, where each reference was found (1 line per resource) and the files they're in:
+     * # references
+     * <type>/<name><TAB><file #>:<line> <file #>:<line>...
+     * # files
+     * <file> (file # is it's position in this section, starting at 0)
+     */
+    static void writePartialFile(String root, List<String> additionalSearchPaths) {
+        System.out.print("\nSHARD " + mShardIndex + "/" + mShardCount);
+        findUnusedResources(root);
+        for (String additionalPath : additionalSearchPaths) {
+            findUnusedResources(additionalPath);
+        }
+
+        String outPath = mShardOutPath != null ? mShardOutPath : "shard-" + mShardIndex + "-of-" + mShardCount + PARTIAL_FILE_EXT;
+        BufferedWriter bw = null;
+        try {
+            bw = new BufferedWriter(new FileWriter(outPath));
+            bw.write(PARTIAL_FILE_HEADER + mShardIndex + "/" + mShardCount + " " + PARTIAL_FILE_TYPES + getTypesText() + "\n");
+            int total = 0;
+            total += writePartialCounts(bw, mStringMap, USE_STRING);
+            total += writePartialCounts(bw, mDimenMap, USE_DIMEN);
+            total += writePartialCounts(bw, mColorMap, USE_COLOR);
+            total += writePartialCounts(bw, mStringArrayMap, USE_STRING_ARRAY);
+            total += writePartialCounts(bw, mStylesMap, USE_STYLES);
+            total += writePartialCounts(bw, mLayoutMap, USE_LAYOUT);
+            total += writePartialCounts(bw, mDrawableMap, USE_DRAWABLE);
+            System.out.println("wrote " + total + " referenced resources to: " + outPath);
+            if (mIsWhyIndexEnabled) {
+                System.out.println("wrote " + writePartialReferences(bw) + " references to: " + outPath);
+            }
+        } catch (IOException e) {
+            System.out.println("writePartialFile: Error writing file: " + outPath + ", " + e.getMessage());
+            System.exit(1);
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * write each referenced resource and it's count; unreferenced resources are left out to keep the file small
+     */
+    private static int writePartialCounts(BufferedWriter bw, Map<String, AtomicInteger> map, String type) throws IOException {
+        int count = 0;
+        for (Map.Entry<String, AtomicInteger> entry : map.entrySet()) {
+            int numReferences = entry.getValue().get();
+            if (numReferences > 0) {
+                bw.write(createResourceId(type, entry.getKey()) + '\t' + numReferences + '\n');
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * write every reference in the reverse index, grouped by resource, followed by the files they're in
+     */
+    private static int writePartialReferences(BufferedWriter bw) throws IOException {
+        bw.write(PARTIAL_FILE_REFERENCES + "\n");
+        Map<String, Integer> fileTable = new HashMap<>();
+        List<String> fileList = new ArrayList<>();
+        int count = 0;
+        if (mWhyIndexFile != null) {
+            // bounded-memory mode; index file is sorted by resource so it can be written as it's read
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(mWhyIndexFile), StandardCharsets.UTF_8));
+            try {
+                String lastResourceId = null;
+                String line;
+                while ((line = br.readLine()) != null) {
+                    // <type>/<name><TAB><file><TAB><line>
+                    int pos = line.indexOf('\t');
+                    int pos2 = line.lastIndexOf('\t');
+                    String resourceId = line.substring(0, pos);
+                    if (!resourceId.equals(lastResourceId)) {
+                        bw.write((lastResourceId != null ? "\n" : "") + resourceId + '\t');
+                        lastResourceId = resourceId;
+                    } else {
+                        bw.write(' ');
+                    }
+                    bw.write(getPartialFileIndex(fileTable, fileList, line.substring(pos + 1, pos2)) + ":" + Integer.parseInt(line.substring(pos2 + 1)));
+                    count++;
+                }
+                if (lastResourceId != null) {
+                    bw.write('\n');
+                }
+            } finally {
+                br.close();
+            }
+        } else {
+            for (int i = 0; i < mWhyResourceList.size(); i++) {
+                if (mWhyResourceOffsets[i] == mWhyResourceOffsets[i + 1]) {
+                    continue;
+                }
+                bw.write(mWhyResourceList.get(i));
+                for (int row = mWhyResourceOffsets[i]; row < mWhyResourceOffsets[i + 1]; row++) {
+                    bw.write((row == mWhyResourceOffsets[i] ? '\t' : ' ') + (getPartialFileIndex(fileTable, fileList, mWhyFileList.get(mWhyFileColumn[row])) + ":" + mWhyLineColumn[row]));
+                    count++;
+                }
+                bw.write('\n');
+            }
+        }
+
+        bw.write(PARTIAL_FILE_FILES + "\n");
+        for (String path : fileList) {
+            bw.write(path + '\n');
+        }
+        return count;
+    }
+
+    private static int getPartialFileIndex(Map<String, Integer> fileTable, List<String> fileList, String path) {
+        Integer fileIndex = fileTable.get(path);
+        if (fileIndex == null) {
+            fileIndex = fileList.size();
+            fileTable.put(path, fileIndex);
+            fileList.add(path);
+        }
+        return fileIndex;
+    }
+
+    /**
+     * merge <path> <partial file>... [--why <type>/<name>]...
+     * index resources in <path> and add up reference counts from all partial files to find unused resources
+     * --why shows every file:line referencing the given resource, from the references in the partial files
+     */
+    static void mergePartialFiles(String[] args) {
+        List<String> whyList = new ArrayList<>();
+        List<String> mergeArgList = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--why") && args.length > i + 1) {
+                whyList.add(args[++i]);
+            } else {
+                mergeArgList.add(args[i]);
+            }
+        }
+        args = mergeArgList.toArray(new String[0]);
+        if (args.length < 3) {
+            printUsage();
+            System.exit(0);
+        }
+        String root = args[1];
+        checkProjectPath(root);
+        List<String> partialFileList = new ArrayList<>();
+        parseOptions(args, 2, partialFileList);
+
+        // --why: locations of each requested resource (<file><TAB><line>) collected while reading partial files
+        Map<String, List<String>> whyLocationMap = new HashMap<>();
+        for (String resource : whyList) {
+            int pos = resource.indexOf('/');
+            if (pos > 0) {
+                whyLocationMap.put(createResourceId(resource.substring(0, pos), resource.substring(pos + 1)), new ArrayList<>());
+            }
+        }
+
+        indexResources(root);
+        markKeepPatterns();
+
+        // every partial file must come from the same split (N) and search the same types as this run;
+        // otherwise some files or types weren't searched and resources would be reported unused by mistake
+        Set<String> shardSet = new HashSet<>();
+        int shardCount = 0;
+        String types = getTypesText();
+        for (String partialFile : partialFileList) {
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(partialFile));
+                String header = br.readLine();
+                if (header == null || !header.startsWith(PARTIAL_FILE_HEADER)) {
+                    System.out.println("not a partial file: " + partialFile);
+                    System.exit(1);
+                }
+                // <i>/<N> types=<types>
+                String[] headerArr = header.substring(PARTIAL_FILE_HEADER.length()).split(" ");
+                String shard = headerArr[0];
+                int count = Integer.parseInt(shard.substring(shard.indexOf('/') + 1));
+                if (shardCount == 0) {
+                    shardCount = count;
+                } else if (count != shardCount) {
+                    System.out.println("ERROR: " + partialFile + " is shard " + shard + " but other partial files are from " + shardCount + " shards");
+                    System.exit(1);
+                }
+                String partialTypes = (headerArr.length > 1 && headerArr[1].startsWith(PARTIAL_FILE_TYPES)) ? headerArr[1].substring(PARTIAL_FILE_TYPES.length()) : null;
+                if (!types.equals(partialTypes)) {
+                    System.out.println("ERROR: " + partialFile + " searched types: " + partialTypes + " but merge is for types: " + types + " (use the same --types)");
+                    System.exit(1);
+                }
+                if (!shardSet.add(shard)) {
+                    System.out.println("WARNING: shard " + shard + " merged more than once: " + partialFile);
+                }
+                boolean isReferences = false;
+                boolean isFiles = false;
+                // --why: <file #>:<line> of each requested resource in this partial file; file #'s come last
+                Map<String, String[]> partialLocationMap = new HashMap<>();
+                List<String> fileList = new ArrayList<>();
+                while (true) {
+                    String line = br.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    if (line.equals(PARTIAL_FILE_REFERENCES)) {
+                        isReferences = true;
+                        continue;
+                    } else if (line.equals(PARTIAL_FILE_FILES)) {
+                        isFiles = true;
+                        continue;
+                    } else if (isFiles) {
+                        fileList.add(line);
+                        continue;
+                    }
+                    int pos = line.indexOf('\t');
+                    if (pos <= 0) {
+                        continue;
+                    }
+                    if (!isReferences) {
+                        addResourceIdCount(line.substring(0, pos), Integer.parseInt(line.substring(pos + 1)));
+                    } else if (whyLocationMap.containsKey(line.substring(0, pos))) {
+                        partialLocationMap.put(line.substring(0, pos), line.substring(pos + 1).split(" "));
+                    }
+                }
+                for (Map.Entry<String, String[]> entry : partialLocationMap.entrySet()) {
+                    for (String location : entry.getValue()) {
+                        int pos = location.indexOf(':');
+                        String path = fileList.get(Integer.parseInt(location.substring(0, pos)));
+                        String whyLine = createWhyLine(entry.getKey(), path, Integer.parseInt(location.substring(pos + 1)));
+                        whyLocationMap.get(entry.getKey()).add(whyLine.substring(entry.getKey().length() + 1));
+                    }
+                }
+                if (!isReferences && !whyList.isEmpty()) {
+                    System.out.println("WARNING: " + partialFile + " has no references (shard wasn't run with --shard-why); --why will be incomplete");
+                }
+            } catch (Exception e) {
+                System.out.println("mergePartialFiles: Error reading file: " + partialFile + ", " + e.getMessage());
+                System.exit(1);
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+        if (shardSet.size() < shardCount) {
+            System.out.println("ERROR: only got " + shardSet.size() + " of " + shardCount + " shards; resources would be reported unused by mistake");
+            System.exit(1);
+        }
+
+        System.out.println("\nMERGED " + partialFileList.size() + " partial files");
+        int unused = printResources(true, false);
+        System.out.println("found " + unused + " TOTAL unused resources");
+
+        for (String resource : whyList) {
+            String resourceId = printWhyHeader(resource);
+            if (resourceId != null) {
+                printWhyLocations(whyLocationMap.get(resourceId));
+            }
+        }
+    }
+
+    /**
+     * why <path> <type>/<name>... [additional search paths]
+     * search project once and show every file:line referencing the given resources
+     */
+    private static void findWhyUsed(String[] args) {
+        if (args.length < 3) {
+            printUsage();
+            System.exit(0);
+        }
+        String root = args[1];
+        checkProjectPath(root);
+        List<String> argList = new ArrayList<>();
+        parseOptions(args, 2, argList);
+        if (!mIsWhyIndexEnabled) {
+            System.out.println("why: not available with --no-why");
+            System.exit(0);
+        }
+        // arguments are either resources (<type>/<name>) or directories to search
+        List<String> resourceIdList = new ArrayList<>();
+        List<String> additionalSearchPaths = new ArrayList<>();
+        for (String arg : argList) {
+            if (new File(arg).isDirectory()) {
+                additionalSearchPaths.add(arg);
+            } else {
+                resourceIdList.add(arg);
             }
         }
+
+        indexResources(root);
+        markKeepPatterns();
+        System.out.print("\nSEARCHING");
+        findUnusedResources(root);
+        for (String additionalPath : additionalSearchPaths) {
+            findUnusedResources(additionalPath);
+        }
+        for (String resourceId : resourceIdList) {
+            printWhy(resourceId);
+        }
+    }
+
+    /**
+     * clear everything indexed or found so far so another project can be searched in the same JVM (ie: tests)
+     */
+    static void resetState() {
+        mStringMap.clear();
+        mDimenMap.clear();
+        mColorMap.clear();
+        mStringArrayMap.clear();
+        mDrawableMap.clear();
+        mLayoutMap.clear();
+        mStylesMap.clear();
+        deletedFileList.clear();
+        mRemovedResourceList.clear();
+        clearWhyIndex();
     }
 
     private static void indexAllResources(File parentFile, boolean isDeleteMode) {
@@ -181,11 +784,17 @@ public class FindUnusedResources {
                         System.out.println(" > " + file.getAbsolutePath());
                     }
                     // index contents of all .xml files in values*/ directory
-                    indexValues(file, isDeleteMode);
+                    if (isAnyValuesTypeEnabled()) {
+                        indexValues(file, isDeleteMode);
+                    }
                     // index all filenames in every /res/drawable*/ directory
-                    indexDrawables(file, isDeleteMode);
+                    if (isTypeEnabled(USE_DRAWABLE)) {
+                        indexDrawables(file, isDeleteMode);
+                    }
                     // index all filenames in every /res/layout*/ directory
-                    indexLayout(file, isDeleteMode);
+                    if (isTypeEnabled(USE_LAYOUT)) {
+                        indexLayout(file, isDeleteMode);
+                    }
                 } else {
                     // recurse into sub-directory
                     indexAllResources(file, isDeleteMode);
@@ -201,8 +810,25 @@ public class FindUnusedResources {
         System.out.println("");
         System.out.println("- optionally, if project is a LIBRARY module you can pass additional paths to search for uses of it's resources");
         System.out.println("- optionally, add \"noprompt\" after <path> to remove unused w/out prompting");
+        System.out.println("- optionally, add \"--keep <type>/<name>\" or \"--keep <type>/<prefix>*\" to always keep matching resources (can be repeated)");
+        System.out.println("- optionally, add \"--pipeline\" to read files ahead on background threads while matching on all cores (\"--io-threads <n>\" sets # of read-ahead threads; default 2)");
+        System.out.println("- optionally, add \"--max-heap-index <count>\" to keep at most <count> \"why\" references in memory; the rest are spilled to temp files");
+        System.out.println("- optionally, add \"--types <type>,<type>...\" to only find (and remove) those types; any of: string,dimen,color,string-array,style,layout,drawable");
+        System.out.println("- optionally, add \"--no-why\" to not keep track of where each resource is referenced (saves memory)");
+        System.out.println("- optionally, add \"--shard i/N\" to only search shard i (0..N-1) of the source files and write the references it finds to a partial file (\"--shard-out <file>\" sets the file name; \"--shard-why\" also writes where each reference is, for \"merge --why\")");
+        System.out.println("");
+        System.out.println("usage: FindUnusedResources merge <path> <partial file>... [--why <type>/<name>]...");
+        System.out.println("- combine partial files from all shards and show unused resources");
+        System.out.println("- optionally, add \"--why <type>/<name>\" to show every file:line referencing it in any shard (can be repeated)");
+        System.out.println("");
+        System.out.println("usage: FindUnusedResources why <path> <type>/<name>...");
+        System.out.println("- show every file:line referencing the given resources (ie: drawable/icon)");
         System.out.println("eg: java FindUnusedResources ~/working/AndroidProject/src/main");
         System.out.println("eg: java FindUnusedResources ~/working/AndroidProject/src/main noprompt");
+        System.out.println("eg: java FindUnusedResources ~/working/AndroidProject/src/main --types drawable,layout");
+        System.out.println("eg: java FindUnusedResources ~/working/AndroidProject/src/main --shard 0/2");
+        System.out.println("eg: java FindUnusedResources why ~/working/AndroidProject/src/main drawable/icon string/app_name");
+        System.out.println("eg: java FindUnusedResources merge ~/working/AndroidProject/src/main shard-0-of-2.refs shard-1-of-2.refs --why drawable/icon");
     }
 
     private static int promptNext() {
@@ -212,38 +838,66 @@ public class FindUnusedResources {
         System.out.println(ACTION_DELETE + ") DELETE unused resources");
         System.out.println(ACTION_PRINT_ALL + ") show ALL indexed resources & usage counts");
         System.out.println(ACTION_EXIT + ") exit");
+        if (mIsWhyIndexEnabled) {
+            System.out.println(ACTION_WHY + ") show WHY a resource is used (file:line of each reference)");
+        }
 
-        BufferedReader br = null;
         String choice = null;
         try {
-            //  open up standard input
-            br = new BufferedReader(new InputStreamReader(System.in));
-            choice = br.readLine();
+            choice = promptLine(null);
+            if (choice == null) {
+                // end of input; nothing else to do
+                return ACTION_EXIT;
+            }
 
             return Integer.parseInt(choice);
-        } catch (IOException ioe) {
-            System.out.println("> IOException: " + choice);
-            ioe.printStackTrace();
         } catch (NumberFormatException nfe) {
             System.out.println("> invalid choice: " + choice);
         }
         return 0;
     }
 
+    /**
+     * @return next line from standard input or null at end of input
+     */
+    private static String promptLine(String message) {
+        if (message != null) {
+            System.out.println(message);
+        }
+        //  open up standard input; same reader each time so nothing buffered is lost
+        if (mStdinReader == null) {
+            mStdinReader = new BufferedReader(new InputStreamReader(System.in));
+        }
+        try {
+            String line = mStdinReader.readLine();
+            return line != null ? line.trim() : null;
+        } catch (IOException ioe) {
+            System.out.println("> IOException: " + ioe.getMessage());
+            ioe.printStackTrace();
+        }
+        return null;
+    }
+
     /**
      * @param root - directory to search through
      * @return number of unused resources still remaining (targets to delete)
      */
     private static int findUnusedResources(String root) {
-        // search through AndroidManifext.xml
-        searchFileForUse(new File(root + "/AndroidManifest.xml"));
-
         // search through all JAVA and XML files at <root>/../
-        searchDirForUse(new File(root + "/../"));
+        // NOTE: this includes <root>/AndroidManifest.xml; searching it separately would count (and list) it twice
+        if (mIsPipeline) {
+            searchDirForUsePipelined(new File(root + "/../"));
+        } else {
+            searchDirForUse(new File(root + "/../"));
+        }
 
         // done searching
         System.out.println();
 
+        // bounded-memory mode: merge any references spilled to disk
+        buildWhyIndex();
+        printScanTimes();
+
         // print out summary for this pass
         return printResources(true, true);
     }
@@ -253,10 +907,10 @@ public class FindUnusedResources {
         if (i == 1) {
             // TODO: use this to support windows better
             //String tmpFolder = System.getProperty("java.io.tmpdir");
-            File backupFolder = new File(TMP_FIND_UNUSED_RESOURCES);
+            File backupFolder = new File(mBackupPath);
             if (backupFolder.exists()) {
                 // delete tmp folder and all of it's contents
-                System.out.println("Deleting backup folder: " + TMP_FIND_UNUSED_RESOURCES);
+                System.out.println("Deleting backup folder: " + mBackupPath);
                 final File[] files = backupFolder.listFiles();
                 for (File f : files) f.delete();
                 backupFolder.delete();
@@ -269,6 +923,7 @@ public class FindUnusedResources {
         indexAllResources(parentFile, true);
 
         // pring and clear deleted resources from maps for next time through
+        mRemovedResourceList.add("PASS " + i);
         int totalRemoved = 0;
         totalRemoved += resetCounters(mStringMap, USE_STRING);
         totalRemoved += resetCounters(mDimenMap, USE_DIMEN);
@@ -356,7 +1011,7 @@ public class FindUnusedResources {
         if (relativeName.startsWith("/") && relativeName.length() > 1) {
             relativeName = relativeName.substring(1);
         }
-        File backupFile = new File(TMP_FIND_UNUSED_RESOURCES + relativeName);
+        File backupFile = new File(mBackupPath + relativeName);
         File backupFolder = backupFile.getParentFile();
         if (!backupFolder.exists()) {
             boolean isOk = backupFolder.mkdirs();
@@ -402,7 +1057,7 @@ public class FindUnusedResources {
                 searchDirForUse(file);
             } else {
                 String filename = file.getName();
-                if (filename.endsWith(".xml") || filename.endsWith(".java") || filename.endsWith(".kt")) {
+                if (isSearchableFile(filename) && isInShard(file)) {
                     // System.out.println("searching: " + file);
                     boolean isMatch = searchFileForUse(file);
                     if (isMatch) {
@@ -421,6 +1076,308 @@ public class FindUnusedResources {
         }
     }
 
+    private static boolean isSearchableFile(String filename) {
+        return filename.endsWith(".xml") || filename.endsWith(".java") || filename.endsWith(".kt");
+    }
+
+    /**
+     * same as searchDirForUse() but reading and matching overlap:
+     * - this thread walks the directory tree and queues up files to search
+     * - I/O threads read each file into a pooled buffer and queue it up for matching
+     * - matcher threads search the loaded file contents
+     * all queues are bounded so a slow stage holds back the ones before it
+     * @throws IllegalStateException if any stage fails; the pass is incomplete so nothing can be removed
+     */
+    private static void searchDirForUsePipelined(File dir) {
+        BlockingQueue<File> pathQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+        BlockingQueue<LoadedFile> loadedQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+        // enough buffers for every loaded file queued or in use; once they're all taken I/O threads wait for matchers
+        int numBuffers = PIPELINE_QUEUE_SIZE + mNumIoThreads + mNumMatchThreads;
+        BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<>(numBuffers);
+        for (int i = 0; i < numBuffers; i++) {
+            bufferPool.add(new byte[PIPELINE_BUFFER_SIZE]);
+        }
+        PipelineStats stats = new PipelineStats();
+
+        List<Thread> ioThreadList = new ArrayList<>();
+        for (int i = 0; i < mNumIoThreads; i++) {
+            Thread thread = new Thread(() -> readAheadFiles(pathQueue, loadedQueue, bufferPool, stats), "read-ahead-" + i);
+            thread.start();
+            ioThreadList.add(thread);
+        }
+        List<Thread> matchThreadList = new ArrayList<>();
+        for (int i = 0; i < mNumMatchThreads; i++) {
+            Thread thread = new Thread(() -> matchLoadedFiles(loadedQueue, bufferPool, stats), "matcher-" + i);
+            thread.start();
+            matchThreadList.add(thread);
+        }
+
+        try {
+            enumerateFiles(dir, pathQueue, stats);
+            for (int i = 0; i < mNumIoThreads; i++) {
+                putOrFail(pathQueue, END_OF_FILES, stats);
+            }
+            for (Thread thread : ioThreadList) {
+                joinOrFail(thread, stats);
+            }
+            for (int i = 0; i < mNumMatchThreads; i++) {
+                putOrFail(loadedQueue, new LoadedFile(END_OF_FILES, null, 0), stats);
+            }
+            for (Thread thread : matchThreadList) {
+                joinOrFail(thread, stats);
+            }
+        } catch (PipelineFailedException e) {
+            // another stage failed; see stats.failure
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stats.fail(e);
+        }
+
+        Throwable failure = stats.failure.get();
+        if (failure != null) {
+            // stop whatever is still running; threads waiting on a queue are interrupted
+            List<Thread> threadList = new ArrayList<>(ioThreadList);
+            threadList.addAll(matchThreadList);
+            for (Thread thread : threadList) {
+                thread.interrupt();
+            }
+            // wait for every thread even if this one is interrupted; restore the interrupt once they're done
+            boolean isInterrupted = Thread.interrupted();
+            for (Thread thread : threadList) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                    }
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("search failed: " + failure, failure);
+        }
+
+        System.out.println();
+        System.out.print(stats.toString());
+    }
+
+    private static void enumerateFiles(File dir, BlockingQueue<File> pathQueue, PipelineStats stats) throws InterruptedException, PipelineFailedException {
+        File[] fileArr = dir.listFiles();
+        if (fileArr == null) {
+            return;
+        }
+        for (File file : fileArr) {
+            if (file.isDirectory()) {
+                enumerateFiles(file, pathQueue, stats);
+            } else if (isSearchableFile(file.getName()) && isInShard(file)) {
+                stats.pathQueue.sample(pathQueue.size());
+                if (!pathQueue.offer(file)) {
+                    // I/O threads are behind; wait for room
+                    stats.pathQueue.numWaits.incrementAndGet();
+                    putOrFail(pathQueue, file, stats);
+                }
+            }
+        }
+    }
+
+    /**
+     * wait for room in queue; gives up if another stage failed (nothing would ever take from the queue)
+     */
+    private static <T> void putOrFail(BlockingQueue<T> queue, T item, PipelineStats stats) throws InterruptedException, PipelineFailedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (stats.failure.get() != null) {
+                throw new PipelineFailedException();
+            }
+        }
+    }
+
+    private static void joinOrFail(Thread thread, PipelineStats stats) throws InterruptedException, PipelineFailedException {
+        while (thread.isAlive()) {
+            thread.join(100);
+            if (stats.failure.get() != null) {
+                throw new PipelineFailedException();
+            }
+        }
+    }
+
+    /**
+     * another pipeline stage failed (see PipelineStats.failure); not an interrupt, so the interrupt flag is left alone
+     */
+    private static class PipelineFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * @return buffer to put back in the pool; a buffer that grew for a big file is replaced with a standard sized one
+     */
+    private static byte[] recycleBuffer(byte[] buffer) {
+        return buffer.length == PIPELINE_BUFFER_SIZE ? buffer : new byte[PIPELINE_BUFFER_SIZE];
+    }
+
+    /**
+     * I/O stage: read whole files into pooled buffers
+     */
+    private static void readAheadFiles(BlockingQueue<File> pathQueue, BlockingQueue<LoadedFile> loadedQueue, BlockingQueue<byte[]> bufferPool, PipelineStats stats) {
+        try {
+            while (true) {
+                File file = pathQueue.take();
+                if (file == END_OF_FILES) {
+                    break;
+                }
+
+                byte[] buffer = bufferPool.take();
+                int length = 0;
+                FileInputStream is = null;
+                try {
+                    is = new FileInputStream(file);
+                    while (true) {
+                        if (length == buffer.length) {
+                            // file is bigger than buffer; grow it (see recycleBuffer)
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        }
+                        int numRead = is.read(buffer, length, buffer.length - length);
+                        if (numRead < 0) {
+                            break;
+                        }
+                        length += numRead;
+                    }
+                } catch (IOException e) {
+                    System.out.println("readAheadFiles: Error reading file: " + file + ", " + e.getMessage());
+                    bufferPool.put(recycleBuffer(buffer));
+                    continue;
+                } finally {
+                    if (is != null) {
+                        try {
+                            is.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+                stats.numBytes.addAndGet(length);
+
+                stats.loadedQueue.sample(loadedQueue.size());
+                LoadedFile loadedFile = new LoadedFile(file, buffer, length);
+                if (!loadedQueue.offer(loadedFile)) {
+                    // matchers are behind; wait for room
+                    stats.loadedQueue.numWaits.incrementAndGet();
+                    loadedQueue.put(loadedFile);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            // ie: OutOfMemoryError growing a buffer; without this the directory walk would wait forever
+            stats.fail(t);
+        }
+    }
+
+    /**
+     * matcher stage: search loaded file contents and return buffers to the pool
+     */
+    private static void matchLoadedFiles(BlockingQueue<LoadedFile> loadedQueue, BlockingQueue<byte[]> bufferPool, PipelineStats stats) {
+        try {
+            while (true) {
+                LoadedFile loadedFile = loadedQueue.poll();
+                if (loadedFile == null) {
+                    // nothing loaded yet; waiting on I/O
+                    stats.numMatcherStalls.incrementAndGet();
+                    loadedFile = loadedQueue.take();
+                }
+                if (loadedFile.file == END_OF_FILES) {
+                    break;
+                }
+
+                boolean isMatch = false;
+                try {
+                    // decode same as FileReader (default charset)
+                    BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(loadedFile.buffer, 0, loadedFile.length)));
+                    isMatch = searchReaderForUse(loadedFile.file, br);
+                } catch (Exception e) {
+                    System.out.println("matchLoadedFiles: Error searching file: " + loadedFile.file + ", " + e.getMessage());
+                    e.printStackTrace();
+                }
+                bufferPool.put(recycleBuffer(loadedFile.buffer));
+                stats.numFiles.incrementAndGet();
+                updateProgress(isMatch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            stats.fail(t);
+        }
+    }
+
+    /**
+     * print out some progress indicator
+     */
+    private static synchronized void updateProgress(boolean isMatch) {
+        if (isMatch) {
+            mIsAnyMatch = true;
+        }
+        long timeMs = System.currentTimeMillis();
+        if (timeMs - mLastUpdateMs >= 400) {
+            System.out.print(mIsAnyMatch ? "+" : ".");
+            mIsAnyMatch = false;
+            mLastUpdateMs = timeMs;
+        }
+    }
+
+    private static class LoadedFile {
+        final File file;
+        final byte[] buffer;
+        final int length;
+
+        LoadedFile(File file, byte[] buffer, int length) {
+            this.file = file;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    private static class QueueStats {
+        final AtomicLong numSamples = new AtomicLong();
+        final AtomicLong totalDepth = new AtomicLong();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        // # of times the producer found the queue full
+        final AtomicLong numWaits = new AtomicLong();
+
+        void sample(int depth) {
+            numSamples.incrementAndGet();
+            totalDepth.addAndGet(depth);
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        @Override
+        public String toString() {
+            long samples = numSamples.get();
+            return "avg depth " + (samples > 0 ? totalDepth.get() / samples : 0) + ", max depth " + maxDepth.get() + "/" + PIPELINE_QUEUE_SIZE + ", full " + numWaits.get() + "x";
+        }
+    }
+
+    private static class PipelineStats {
+        final QueueStats pathQueue = new QueueStats();
+        final QueueStats loadedQueue = new QueueStats();
+        final AtomicLong numFiles = new AtomicLong();
+        final AtomicLong numBytes = new AtomicLong();
+        // # of times a matcher had nothing to do
+        final AtomicLong numMatcherStalls = new AtomicLong();
+        // first error that stopped a stage
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+
+        @Override
+        public String toString() {
+            return "pipeline: " + numFiles.get() + " files, " + (numBytes.get() / 1024) + " KB, " + mNumIoThreads + " I/O / " + mNumMatchThreads + " matcher threads\n"
+                    + " > path queue: " + pathQueue + "\n"
+                    + " > loaded queue: " + loadedQueue + "\n"
+                    + " > matchers waited on I/O " + numMatcherStalls.get() + "x\n";
+        }
+    }
+
     private static int printResources(boolean showUnusedOnly, boolean showSummaryOnly) {
         int total = 0;
         total += printResources(mStringMap, USE_STRING, showUnusedOnly, showSummaryOnly);
@@ -484,6 +1441,7 @@ public class FindUnusedResources {
             if (value.get() == 0) {
                 // UNUSED RESOURCE
                 count++;
+                mRemovedResourceList.add(createResourceId(text, key));
                 // delete this key
                 it.remove();
             } else {
@@ -509,18 +1467,21 @@ public class FindUnusedResources {
                 }
 
                 // each line in an xml file can contain at most 1 of the below
-                boolean isFound;
-                isFound = addLineEntry(line, mStringMap, createBeginTag(USE_STRING));
-                if (!isFound) {
+                // NOTE: types not requested (--types) are never added so they're never searched for or removed
+                boolean isFound = false;
+                if (isTypeEnabled(USE_STRING)) {
+                    isFound = addLineEntry(line, mStringMap, createBeginTag(USE_STRING));
+                }
+                if (!isFound && isTypeEnabled(USE_DIMEN)) {
                     isFound = addLineEntry(line, mDimenMap, createBeginTag(USE_DIMEN));
                 }
-                if (!isFound) {
+                if (!isFound && isTypeEnabled(USE_COLOR)) {
                     isFound = addLineEntry(line, mColorMap, createBeginTag(USE_COLOR));
                 }
-                if (!isFound) {
+                if (!isFound && isTypeEnabled(USE_STRING_ARRAY)) {
                     isFound = addLineEntry(line, mStringArrayMap, createBeginTag(USE_STRING_ARRAY));
                 }
-                if (!isFound) {
+                if (!isFound && isTypeEnabled(USE_STYLES)) {
                     isFound = addLineEntry(line, mStylesMap, createBeginTag(USE_STYLES));
                 }
             }
@@ -576,54 +1537,10 @@ public class FindUnusedResources {
     }
 
     private static boolean searchFileForUse(File file) {
-        boolean isAnyMatch = false;
-        String fileName = file.getName();
-        boolean isJava = fileName.endsWith(".java") || fileName.endsWith(".kt");
         BufferedReader br = null;
         try {
             br = new BufferedReader(new FileReader(file));
-            while (true) {
-                String line = br.readLine();
-                if (line == null) {
-                    // done reading file
-                    break;
-                }
-
-                // ignore commented out lines
-                if (isJava && line.trim().startsWith("//")) {
-                    continue;
-                }
-
-                // search line for a reference to one of the indexed resources
-                // NOTE: I'm expecting at most a line can only contain a reference to a single resource type (string/color/etc)
-                // > Once one is found - we can save time by skipping searching for others on the same line
-                // Multiple references for the same time are checked:
-                // ex: int resId = (isSomething ? R.string.one : R.string.two);
-                boolean isMatch;
-                isMatch = searchLineForUse(isJava, line, mStringMap, USE_STRING);
-                if (!isMatch) {
-                    searchLineForUse(isJava, line, mDimenMap, USE_DIMEN);
-                }
-                if (!isMatch) {
-                    isMatch = searchLineForUse(isJava, line, mColorMap, USE_COLOR);
-                }
-                if (!isMatch) {
-                    isMatch = searchLineForUse(isJava, line, mStringArrayMap, USE_STRING_ARRAY_REFERENCE);
-                }
-                if (!isMatch) {
-                    isMatch = searchLineForUse(isJava, line, mDrawableMap, USE_DRAWABLE);
-                }
-                if (!isMatch) {
-                    isMatch = searchLineForUse(isJava, line, mStylesMap, USE_STYLES);
-                }
-                if (!isMatch) {
-                    isMatch = searchLineForUse(isJava, line, mLayoutMap, USE_LAYOUT);
-                }
-
-                if (isMatch) {
-                    isAnyMatch = true;
-                }
-            }
+            return searchReaderForUse(file, br);
         } catch (Exception e) {
             System.out.println("searchFileForUse: Error reading file: " + file + ", " + e.getMessage());
             e.printStackTrace();
@@ -635,10 +1552,95 @@ public class FindUnusedResources {
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * search contents of file (read from br) for resource references
+     * NOTE: can be called from multiple matcher threads at once (see searchDirForUsePipelined)
+     */
+    private static boolean searchReaderForUse(File file, BufferedReader br) throws IOException {
+        boolean isAnyMatch = false;
+        // references in this file; added to the reverse index once the whole file is searched
+        FileReferences references = mIsWhyIndexEnabled ? new FileReferences(file) : null;
+        String fileName = file.getName();
+        boolean isJava = fileName.endsWith(".java") || fileName.endsWith(".kt");
+        // --types: time spent on each type in this file; added to mScanTimeNs when done
+        long[] scanTimeNs = (mTypeSet != null) ? new long[ALL_TYPES.length] : null;
+        int lineNum = 0;
+        while (true) {
+            String line = br.readLine();
+            if (line == null) {
+                // done reading file
+                break;
+            }
+            lineNum++;
+
+            // ignore commented out lines
+            if (isJava && line.trim().startsWith("//")) {
+                continue;
+            }
+
+            // search line for a reference to one of the indexed resources
+            // NOTE: I'm expecting at most a line can only contain a reference to a single resource type (string/color/etc)
+            // > Once one is found - we can save time by skipping searching for others on the same line
+            // Multiple references for the same time are checked:
+            // ex: int resId = (isSomething ? R.string.one : R.string.two);
+            boolean isMatch;
+            isMatch = searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mStringMap, USE_STRING);
+            if (!isMatch) {
+                searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mDimenMap, USE_DIMEN);
+            }
+            if (!isMatch) {
+                isMatch = searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mColorMap, USE_COLOR);
+            }
+            if (!isMatch) {
+                isMatch = searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mStringArrayMap, USE_STRING_ARRAY_REFERENCE);
+            }
+            if (!isMatch) {
+                isMatch = searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mDrawableMap, USE_DRAWABLE);
+            }
+            if (!isMatch) {
+                isMatch = searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mStylesMap, USE_STYLES);
+            }
+            if (!isMatch) {
+                isMatch = searchLineForUse(references, lineNum, scanTimeNs, isJava, line, mLayoutMap, USE_LAYOUT);
+            }
+
+            // dynamic references by name; any resource starting with a string literal prefix is used
+            if (isJava && line.indexOf(GET_IDENTIFIER) >= 0 && searchLineForDynamicUse(references, lineNum, line)) {
+                isMatch = true;
+            }
+
+            if (isMatch) {
+                isAnyMatch = true;
+            }
+        }
+
+        if (scanTimeNs != null) {
+            for (int i = 0; i < scanTimeNs.length; i++) {
+                if (scanTimeNs[i] > 0) {
+                    mScanTimeNs.addAndGet(i, scanTimeNs[i]);
+                }
+            }
+        }
+        if (references != null && references.size > 0) {
+            addWhyReferences(references);
+        }
         return isAnyMatch;
     }
 
-    private static boolean searchLineForUse(boolean isJava, String line, Map<String, AtomicInteger> map, String type) {
+    /**
+     * @param references - if not null, where each reference is found is added to it (see markUsed)
+     * @param scanTimeNs - if not null, time spent is added to scanTimeNs[<index of type>]
+     */
+    private static boolean searchLineForUse(FileReferences references, int lineNum, long[] scanTimeNs, boolean isJava, String line, Map<String, AtomicInteger> map, String type) {
+        if (map.isEmpty()) {
+            // type not requested (--types) or nothing left to find
+            return false;
+        }
+        long startNs = (scanTimeNs != null) ? System.nanoTime() : 0;
+
         String searchFor; // primary use case (ie: R.string.value)
         String searchFor2; // secondary use case (ie: R.id.value)
         String searchFor3 = null;
@@ -698,13 +1700,623 @@ public class FindUnusedResources {
 
             if (isFound) {
                 // incremement value reference
-                AtomicInteger count = map.get(value);
-                count.addAndGet(1);
+                markUsed(map, type, value, references, lineNum);
             }
         }
+        if (scanTimeNs != null) {
+            scanTimeNs[getTypeIndex(type)] += System.nanoTime() - startNs;
+        }
         return isFound;
     }
 
+    /**
+     * record a reference to resource <type>/<value> from the given line
+     * @param references - references in the file being searched or null to only count (ie: --keep, --no-why)
+     */
+    private static void markUsed(Map<String, AtomicInteger> map, String type, String value, FileReferences references, int lineNum) {
+        AtomicInteger count = map.get(value);
+        count.addAndGet(1);
+        if (references != null) {
+            references.add(createResourceId(type, value), lineNum);
+        }
+    }
+
+    /**
+     * references found in 1 file; added to the reverse index all at once when the file is done (see addWhyReferences)
+     * so matcher threads don't wait on a lock for every match
+     */
+    private static class FileReferences {
+        final File file;
+        String[] resourceIdArr = new String[16];
+        int[] lineArr = new int[16];
+        int size;
+
+        FileReferences(File file) {
+            this.file = file;
+        }
+
+        void add(String resourceId, int lineNum) {
+            if (size == lineArr.length) {
+                resourceIdArr = Arrays.copyOf(resourceIdArr, size * 2);
+                lineArr = Arrays.copyOf(lineArr, size * 2);
+            }
+            resourceIdArr[size] = resourceId;
+            lineArr[size] = lineNum;
+            size++;
+        }
+    }
+
+    /**
+     * @return resource id in the form <type>/<name> (ie: drawable/icon); string-array's use the R.array type
+     */
+    private static String createResourceId(String type, String value) {
+        if (type.equals(USE_STRING_ARRAY)) {
+            type = USE_STRING_ARRAY_REFERENCE;
+        }
+        return type + "/" + value;
+    }
+
+    /**
+     * add all references found in a file to the reverse index
+     */
+    private static synchronized void addWhyReferences(FileReferences references) {
+        File file = references.file;
+        String path = file.getPath();
+        Integer fileIndex = mWhyFileTable.get(path);
+        if (fileIndex == null) {
+            fileIndex = mWhyFileList.size();
+            mWhyFileTable.put(path, fileIndex);
+            // show path relative to project (and without any /../)
+            Path rootPath = new File(mRootPath).toPath().normalize();
+            mWhyFileList.add(rootPath.relativize(file.getAbsoluteFile().toPath().normalize()).toString());
+        }
+
+        if (mWhySize + references.size > mWhyResourceColumn.length) {
+            int newSize = Math.max(mWhySize * 2, mWhySize + references.size);
+            mWhyResourceColumn = Arrays.copyOf(mWhyResourceColumn, newSize);
+            mWhyFileColumn = Arrays.copyOf(mWhyFileColumn, newSize);
+            mWhyLineColumn = Arrays.copyOf(mWhyLineColumn, newSize);
+        }
+        for (int i = 0; i < references.size; i++) {
+            String resourceId = references.resourceIdArr[i];
+            Integer resourceIndex = mWhyResourceTable.get(resourceId);
+            if (resourceIndex == null) {
+                resourceIndex = mWhyResourceList.size();
+                mWhyResourceTable.put(resourceId, resourceIndex);
+                mWhyResourceList.add(resourceId);
+            }
+            mWhyResourceColumn[mWhySize] = resourceIndex;
+            mWhyFileColumn[mWhySize] = fileIndex;
+            mWhyLineColumn[mWhySize] = references.lineArr[i];
+            mWhySize++;
+        }
+        mWhyResourceOffsets = null;
+
+        if (mMaxHeapIndex > 0 && mWhySize >= mMaxHeapIndex) {
+            spillWhyIndex();
+        }
+    }
+
+    private static synchronized void clearWhyIndex() {
+        clearWhyMemory();
+        for (File runFile : mWhyRunList) {
+            runFile.delete();
+        }
+        mWhyRunList.clear();
+        if (mWhyIndexFile != null) {
+            mWhyIndexFile.delete();
+            mWhyIndexFile = null;
+        }
+        mWhyIndexOffsetMap.clear();
+    }
+
+    private static void clearWhyMemory() {
+        mWhyResourceTable.clear();
+        mWhyResourceList.clear();
+        mWhyFileTable.clear();
+        mWhyFileList.clear();
+        mWhySize = 0;
+        mWhyResourceOffsets = null;
+    }
+
+    /**
+     * group columns by resource (counting sort) so references to a resource are found w/out scanning every row
+     */
+    private static void groupWhyIndex() {
+        int numResources = mWhyResourceList.size();
+        int[] offsets = new int[numResources + 1];
+        for (int i = 0; i < mWhySize; i++) {
+            offsets[mWhyResourceColumn[i] + 1]++;
+        }
+        for (int i = 0; i < numResources; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] nextRow = Arrays.copyOf(offsets, numResources);
+        int[] resourceColumn = new int[mWhyResourceColumn.length];
+        int[] fileColumn = new int[mWhyFileColumn.length];
+        int[] lineColumn = new int[mWhyLineColumn.length];
+        for (int i = 0; i < mWhySize; i++) {
+            int resourceIndex = mWhyResourceColumn[i];
+            int row = nextRow[resourceIndex]++;
+            resourceColumn[row] = resourceIndex;
+            fileColumn[row] = mWhyFileColumn[i];
+            lineColumn[row] = mWhyLineColumn[i];
+        }
+        mWhyResourceColumn = resourceColumn;
+        mWhyFileColumn = fileColumn;
+        mWhyLineColumn = lineColumn;
+        mWhyResourceOffsets = offsets;
+    }
+
+    /**
+     * @return reference as a line in a run: <type>/<name><TAB><file><TAB><line>
+     * NOTE: line # is zero padded so lines sort the same as (resource, file, line)
+     */
+    private static String createWhyLine(String resourceId, String path, int lineNum) {
+        return resourceId + '\t' + path + '\t' + String.format("%010d", lineNum);
+    }
+
+    /**
+     * bounded-memory mode: sort in-memory references by (resource, file, line) and write them to a temp file (run)
+     */
+    private static void spillWhyIndex() {
+        if (mWhySize == 0) {
+            return;
+        }
+        Integer[] order = new Integer[mWhySize];
+        for (int i = 0; i < mWhySize; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int result = mWhyResourceList.get(mWhyResourceColumn[a]).compareTo(mWhyResourceList.get(mWhyResourceColumn[b]));
+            if (result == 0) {
+                result = mWhyFileList.get(mWhyFileColumn[a]).compareTo(mWhyFileList.get(mWhyFileColumn[b]));
+            }
+            return result != 0 ? result : Integer.compare(mWhyLineColumn[a], mWhyLineColumn[b]);
+        });
+
+        BufferedWriter bw = null;
+        try {
+            File runFile = File.createTempFile("FindUnusedResources", ".run");
+            runFile.deleteOnExit();
+            mWhyRunList.add(runFile);
+            bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(runFile), StandardCharsets.UTF_8));
+            for (int i : order) {
+                bw.write(createWhyLine(mWhyResourceList.get(mWhyResourceColumn[i]), mWhyFileList.get(mWhyFileColumn[i]), mWhyLineColumn[i]));
+                bw.write('\n');
+            }
+        } catch (IOException e) {
+            // references (not counts) are lost; "why" will be incomplete
+            System.out.println("spillWhyIndex: Error writing run: " + e.getMessage());
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        clearWhyMemory();
+    }
+
+    /**
+     * end of search: if anything was spilled, merge all runs (external sort) into mWhyIndexFile
+     */
+    private static void buildWhyIndex() {
+        if (mWhyRunList.isEmpty() && mWhyIndexFile == null) {
+            // never went over budget; everything is still in memory
+            groupWhyIndex();
+            return;
+        }
+
+        spillWhyIndex();
+        if (mWhyIndexFile != null) {
+            // index from searching a previous path is sorted too; merge it with the new runs
+            mWhyRunList.add(mWhyIndexFile);
+            mWhyIndexFile = null;
+        }
+        int numRuns = mWhyRunList.size();
+        try {
+            // limit # of open files by merging runs in rounds
+            while (mWhyRunList.size() > MAX_MERGE_RUNS) {
+                List<File> mergeList = new ArrayList<>(mWhyRunList.subList(0, MAX_MERGE_RUNS));
+                mWhyRunList.subList(0, MAX_MERGE_RUNS).clear();
+                File runFile = File.createTempFile("FindUnusedResources", ".run");
+                runFile.deleteOnExit();
+                mWhyRunList.add(runFile);
+                mergeRuns(mergeList, runFile, null);
+            }
+            File indexFile = File.createTempFile("FindUnusedResources", ".index");
+            indexFile.deleteOnExit();
+            mWhyIndexOffsetMap.clear();
+            mergeRuns(mWhyRunList, indexFile, mWhyIndexOffsetMap);
+            mWhyIndexFile = indexFile;
+        } catch (IOException e) {
+            System.out.println("buildWhyIndex: Error merging runs: " + e.getMessage());
+            e.printStackTrace();
+        }
+        for (File runFile : mWhyRunList) {
+            runFile.delete();
+        }
+        mWhyRunList.clear();
+        System.out.println("merged " + numRuns + " spilled reference runs");
+    }
+
+    /**
+     * merge sorted runs into outFile; if offsetMap isn't null, save where each resource starts & # of references
+     */
+    private static void mergeRuns(List<File> runList, File outFile, Map<String, long[]> offsetMap) throws IOException {
+        // each entry is the current line of a run and the reader it came from
+        PriorityQueue<Map.Entry<String, BufferedReader>> queue = new PriorityQueue<>(Map.Entry.comparingByKey());
+        OutputStream os = null;
+        try {
+            for (File runFile : runList) {
+                BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(runFile), StandardCharsets.UTF_8));
+                String line = br.readLine();
+                if (line != null) {
+                    queue.add(new AbstractMap.SimpleEntry<>(line, br));
+                } else {
+                    br.close();
+                }
+            }
+            os = new BufferedOutputStream(new FileOutputStream(outFile));
+
+            // runs are sorted, so all references to the same resource come out together
+            long offset = 0;
+            long[] lastOffset = null;
+            String lastResourceId = null;
+            while (!queue.isEmpty()) {
+                Map.Entry<String, BufferedReader> entry = queue.poll();
+                String line = entry.getKey();
+                if (offsetMap != null) {
+                    String resourceId = line.substring(0, line.indexOf('\t'));
+                    if (!resourceId.equals(lastResourceId)) {
+                        lastResourceId = resourceId;
+                        lastOffset = new long[]{offset, 0};
+                        offsetMap.put(resourceId, lastOffset);
+                    }
+                    lastOffset[1]++;
+                }
+                byte[] bytes = (line + '\n').getBytes(StandardCharsets.UTF_8);
+                os.write(bytes);
+                offset += bytes.length;
+
+                BufferedReader br = entry.getValue();
+                String next = br.readLine();
+                if (next != null) {
+                    queue.add(new AbstractMap.SimpleEntry<>(next, br));
+                } else {
+                    br.close();
+                }
+            }
+        } finally {
+            for (Map.Entry<String, BufferedReader> entry : queue) {
+                try {
+                    entry.getValue().close();
+                } catch (IOException e) {
+                }
+            }
+            if (os != null) {
+                os.close();
+            }
+            for (File runFile : runList) {
+                runFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return "<file><TAB><line>" of each reference to resourceId in mWhyIndexFile
+     */
+    private static List<String> readWhyIndexFile(String resourceId) {
+        List<String> resultList = new ArrayList<>();
+        long[] offset = mWhyIndexOffsetMap.get(resourceId);
+        if (mWhyIndexFile == null || offset == null) {
+            return resultList;
+        }
+        BufferedReader br = null;
+        try {
+            FileInputStream is = new FileInputStream(mWhyIndexFile);
+            is.getChannel().position(offset[0]);
+            br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            for (long i = 0; i < offset[1]; i++) {
+                String line = br.readLine();
+                if (line == null) {
+                    break;
+                }
+                // <type>/<name><TAB><file><TAB><line>
+                resultList.add(line.substring(line.indexOf('\t') + 1));
+            }
+        } catch (IOException e) {
+            System.out.println("readWhyIndexFile: Error reading: " + mWhyIndexFile + ", " + e.getMessage());
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return resultList;
+    }
+
+    /**
+     * print every file:line referencing resource <type>/<name>
+     */
+    private static synchronized void printWhy(String resource) {
+        String resourceId = printWhyHeader(resource);
+        if (resourceId != null) {
+            printWhyLocations(getWhyLocations(resourceId));
+        }
+    }
+
+    /**
+     * @return "<file><TAB><line>" of each reference to resourceId found by the last search (see createWhyLine)
+     */
+    static synchronized List<String> getWhyLocations(String resourceId) {
+        if (mWhyIndexFile != null) {
+            // bounded-memory mode; everything was merged to disk
+            return readWhyIndexFile(resourceId);
+        }
+        List<String> locationList = new ArrayList<>();
+        Integer resourceIndex = mWhyResourceTable.get(resourceId);
+        if (resourceIndex == null || mWhyResourceOffsets == null) {
+            return locationList;
+        }
+        for (int row = mWhyResourceOffsets[resourceIndex]; row < mWhyResourceOffsets[resourceIndex + 1]; row++) {
+            String whyLine = createWhyLine(resourceId, mWhyFileList.get(mWhyFileColumn[row]), mWhyLineColumn[row]);
+            locationList.add(whyLine.substring(resourceId.length() + 1));
+        }
+        return locationList;
+    }
+
+    /**
+     * @return id (see createResourceId) of every indexed resource or only the ones w/out references
+     */
+    static List<String> getResourceIds(boolean isUnusedOnly) {
+        List<String> resourceIdList = new ArrayList<>();
+        for (String type : ALL_TYPES) {
+            for (Map.Entry<String, AtomicInteger> entry : getMapForType(type).entrySet()) {
+                if (!isUnusedOnly || entry.getValue().get() == 0) {
+                    resourceIdList.add(createResourceId(type, entry.getKey()));
+                }
+            }
+        }
+        return resourceIdList;
+    }
+
+    /**
+     * print resource <type>/<name>'s reference count and any --keep patterns matching it
+     * @return resource id (see createResourceId) or null if resource isn't indexed
+     */
+    private static String printWhyHeader(String resource) {
+        int pos = resource.indexOf('/');
+        Map<String, AtomicInteger> map = (pos > 0) ? getMapForType(resource.substring(0, pos)) : null;
+        if (map == null) {
+            System.out.println("why: invalid resource: " + resource + " (expected <type>/<name>)");
+            return null;
+        }
+        String name = resource.substring(pos + 1);
+        AtomicInteger count = map.get(name);
+        if (count == null) {
+            System.out.println("why: " + resource + " is not an indexed resource");
+            return null;
+        }
+
+        String resourceId = createResourceId(resource.substring(0, pos), name);
+        System.out.println(resourceId + ": " + count.get() + " references");
+        for (String pattern : mKeepPatterns) {
+            if (pattern.equals(resourceId) || pattern.endsWith("*") && resourceId.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                System.out.println(" > --keep " + pattern);
+            }
+        }
+        return resourceId;
+    }
+
+    /**
+     * @param locationList - "<file><TAB><line>" of each reference (see createWhyLine); printed sorted by file & line
+     */
+    private static void printWhyLocations(List<String> locationList) {
+        Collections.sort(locationList);
+        for (String location : locationList) {
+            int pos = location.lastIndexOf('\t');
+            System.out.println(" > " + location.substring(0, pos) + ":" + Integer.parseInt(location.substring(pos + 1)));
+        }
+    }
+
+    /**
+     * @return map of indexed resources for the given type (ie: "string" returns mStringMap) or null if unknown
+     */
+    private static NavigableMap<String, AtomicInteger> getMapForType(String type) {
+        if (type.equals(USE_STRING)) {
+            return mStringMap;
+        } else if (type.equals(USE_DIMEN)) {
+            return mDimenMap;
+        } else if (type.equals(USE_COLOR)) {
+            return mColorMap;
+        } else if (type.equals(USE_STRING_ARRAY) || type.equals(USE_STRING_ARRAY_REFERENCE)) {
+            return mStringArrayMap;
+        } else if (type.equals(USE_DRAWABLE)) {
+            return mDrawableMap;
+        } else if (type.equals(USE_LAYOUT)) {
+            return mLayoutMap;
+        } else if (type.equals(USE_STYLES)) {
+            return mStylesMap;
+        }
+        return null;
+    }
+
+    /**
+     * add numReferences to the counter for resource id <type>/<name> (see createResourceId)
+     */
+    private static void addResourceIdCount(String resourceId, int numReferences) {
+        int pos = resourceId.indexOf('/');
+        if (pos <= 0) {
+            return;
+        }
+        Map<String, AtomicInteger> map = getMapForType(resourceId.substring(0, pos));
+        AtomicInteger count = (map != null) ? map.get(resourceId.substring(pos + 1)) : null;
+        if (count != null) {
+            count.addAndGet(numReferences);
+        }
+    }
+
+    /**
+     * look for getIdentifier() calls with a string literal name and type; eg:
+     * getResources().getIdentifier("flag_" + code, "drawable", pkg) -> all drawables starting with "flag_" are used
+     * resources.getIdentifier("flag_$code", "drawable", packageName) -> same (kotlin string template)
+     * getResources().getIdentifier("flag_us", "drawable", pkg) -> drawable "flag_us" is used
+     * getResources().getIdentifier("flag_" + code, type, pkg) -> type isn't known; "flag_*" of every type is used
+     */
+    private static boolean searchLineForDynamicUse(FileReferences references, int lineNum, String line) {
+        boolean isFound = false;
+        int stPos = 0;
+        while (true) {
+            int pos = line.indexOf(GET_IDENTIFIER, stPos);
+            if (pos < 0) {
+                break;
+            }
+            stPos = pos + GET_IDENTIFIER.length();
+
+            // 1st argument: name; must start with a string literal
+            int nameStart = skipWhitespace(line, stPos);
+            if (nameStart >= line.length() || line.charAt(nameStart) != '"') {
+                // name isn't a literal; nothing to match
+                continue;
+            }
+            int nameEnd = line.indexOf('"', nameStart + 1);
+            if (nameEnd < 0) {
+                continue;
+            }
+            String name = line.substring(nameStart + 1, nameEnd);
+            boolean isPrefix;
+            int templatePos = name.indexOf('$');
+            if (templatePos >= 0) {
+                // kotlin string template: "flag_$code"
+                name = name.substring(0, templatePos);
+                isPrefix = true;
+            } else {
+                // "flag_" + code
+                int nextPos = skipWhitespace(line, nameEnd + 1);
+                isPrefix = nextPos < line.length() && line.charAt(nextPos) == '+';
+            }
+
+            // 2nd argument: type; a string literal or it can't be known (any type)
+            // NOTE: name can be an expression with commas of it's own: "flag_" + String.format("%s", code)
+            String type = null;
+            int commaPos = findArgumentEnd(line, nameEnd + 1);
+            if (commaPos >= 0 && line.charAt(commaPos) == ',') {
+                int typeStart = skipWhitespace(line, commaPos + 1);
+                int typeEnd = (typeStart < line.length() && line.charAt(typeStart) == '"') ? line.indexOf('"', typeStart + 1) : -1;
+                // literal must be the whole argument; not "draw" + "able"
+                int nextPos = (typeEnd > 0) ? skipWhitespace(line, typeEnd + 1) : -1;
+                if (nextPos >= line.length() || nextPos > 0 && (line.charAt(nextPos) == ',' || line.charAt(nextPos) == ')')) {
+                    type = line.substring(typeStart + 1, typeEnd);
+                }
+            }
+
+            if (type != null) {
+                NavigableMap<String, AtomicInteger> map = getMapForType(type);
+                if (map != null && markDynamicUsed(map, type, name, isPrefix, references, lineNum)) {
+                    isFound = true;
+                }
+            } else {
+                // keep it in every type rather than remove something that's used
+                for (String anyType : ALL_TYPES) {
+                    if (markDynamicUsed(getMapForType(anyType), anyType, name, isPrefix, references, lineNum)) {
+                        isFound = true;
+                    }
+                }
+            }
+        }
+        return isFound;
+    }
+
+    /**
+     * mark resource name (or every resource starting with name if isPrefix) as used
+     * @return true if any resource matched
+     */
+    private static boolean markDynamicUsed(NavigableMap<String, AtomicInteger> map, String type, String name, boolean isPrefix, FileReferences references, int lineNum) {
+        if (isPrefix) {
+            return markPrefixUsed(map, type, name, references, lineNum);
+        } else if (map.containsKey(name)) {
+            markUsed(map, type, name, references, lineNum);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return position of the ',' or ')' ending the call argument at pos (skipping nested calls and string literals)
+     * or -1 if the argument doesn't end on this line
+     */
+    private static int findArgumentEnd(String line, int pos) {
+        int depth = 0;
+        for (int i = pos; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"' || c == '\'') {
+                // skip string/char literal
+                for (i++; i < line.length() && line.charAt(i) != c; i++) {
+                    if (line.charAt(i) == '\\') {
+                        i++;
+                    }
+                }
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                if (depth == 0) {
+                    return c == ')' ? i : -1;
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * mark every resource starting with prefix as used; map is sorted so this only visits the matching range
+     * @param references - references in the file being searched or null if not from a file (ie: --keep pattern)
+     * @param lineNum - line of the reference in that file
+     * @return true if any resource matched
+     */
+    private static boolean markPrefixUsed(NavigableMap<String, AtomicInteger> map, String type, String prefix, FileReferences references, int lineNum) {
+        boolean isFound = false;
+        for (Map.Entry<String, AtomicInteger> entry : map.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+            markUsed(map, type, entry.getKey(), references, lineNum);
+            isFound = true;
+        }
+        return isFound;
+    }
+
+    /**
+     * mark all resources matching a --keep pattern as used
+     */
+    private static void markKeepPatterns() {
+        for (String pattern : mKeepPatterns) {
+            int pos = pattern.indexOf('/');
+            String type = pattern.substring(0, pos);
+            String name = pattern.substring(pos + 1);
+            NavigableMap<String, AtomicInteger> map = getMapForType(type);
+            if (name.endsWith("*")) {
+                markPrefixUsed(map, type, name.substring(0, name.length() - 1), null, 0);
+            } else {
+                AtomicInteger count = map.get(name);
+                if (count != null) {
+                    count.addAndGet(1);
+                }
+            }
+        }
+    }
+
     /**
      * view binding: fragment_disabled = FragmentDisabledBinding
      */
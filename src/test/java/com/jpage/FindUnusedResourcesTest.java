@@ -0,0 +1,468 @@
+package com.jpage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * differential test: run every engine (pipeline, bounded-memory, ...) on a copy of a project and compare the resources
+ * it removes and the bytes of every file it leaves behind with the reference engine (sequential search)
+ */
+public class FindUnusedResourcesTest {
+    // engines compared against the first (reference) engine
+    private static final String ENGINE_REFERENCE = "reference";
+    private static final String ENGINE_PIPELINE = "pipeline";
+    private static final String ENGINE_BOUNDED = "bounded";
+    private static final String[] ENGINES = {ENGINE_REFERENCE, ENGINE_PIPELINE, ENGINE_BOUNDED, ENGINE_PIPELINE + "+" + ENGINE_BOUNDED};
+    // every shard of NUM_SHARDS searched (--shard i/N) then merged; compared with the reference's 1st pass
+    private static final String ENGINE_SHARD = "shard";
+    private static final int NUM_SHARDS = 3;
+    // small budget so bounded engines spill (and merge in rounds)
+    private static final long MAX_HEAP_INDEX = 8;
+    private static final long SEED = 42;
+    private static final int NUM_GENERATED = 200;
+
+    @TempDir
+    File mWorkDir;
+
+    private String mDefaultBackupPath;
+
+    @BeforeEach
+    public void setUp() {
+        mDefaultBackupPath = FindUnusedResources.mBackupPath;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FindUnusedResources.mBackupPath = mDefaultBackupPath;
+        FindUnusedResources.mIsPipeline = false;
+        FindUnusedResources.mMaxHeapIndex = 0;
+        FindUnusedResources.mShardIndex = 0;
+        FindUnusedResources.mShardCount = 0;
+        FindUnusedResources.mShardOutPath = null;
+        FindUnusedResources.mIsWhyIndexEnabled = true;
+        FindUnusedResources.resetState();
+    }
+
+    @Test
+    public void enginesMatchReferenceOnFixture() throws Exception {
+        List<String> removedList = verifyEngines(getFixtureProject()).removedList;
+
+        // only referenced by unused_layout; removed in the next pass
+        assertTrue(removedList.indexOf("drawable/orphan_img") > removedList.indexOf("layout/unused_layout"), removedList.toString());
+        assertTrue(removedList.contains("string/unused_one"), removedList.toString());
+        // getIdentifier("flag_" + code, "drawable", pkg)
+        assertFalse(removedList.contains("drawable/flag_us"), removedList.toString());
+        // getIdentifier("lang_" + String.format("%s", code), "drawable", pkg); commas inside the name
+        assertFalse(removedList.contains("drawable/lang_en"), removedList.toString());
+        assertFalse(removedList.contains("drawable/tab_home"), removedList.toString());
+        // getIdentifier("badge_" + level, type, pkg); type isn't known so "badge_*" of every type is kept
+        assertFalse(removedList.contains("drawable/badge_gold"), removedList.toString());
+        assertFalse(removedList.contains("string/badge_title"), removedList.toString());
+        assertFalse(removedList.contains("string/used_java"), removedList.toString());
+    }
+
+    @Test
+    public void enginesMatchReferenceOnGeneratedProject() throws Exception {
+        File project = generateProject(new File(mWorkDir, "generated"), NUM_GENERATED, SEED);
+        VerifyResult referenceResult = verifyEngines(project);
+        assertFalse(referenceResult.removedList.isEmpty());
+        // enough references that bounded engines merge their spilled runs in more than 1 round
+        int numReferences = 0;
+        for (List<String> locationList : referenceResult.whyMap.values()) {
+            numReferences += locationList.size();
+        }
+        assertTrue(numReferences > MAX_HEAP_INDEX * FindUnusedResources.MAX_MERGE_RUNS, "only " + numReferences + " references");
+    }
+
+    @Test
+    public void backupFolderIsUntouched() throws Exception {
+        File defaultBackupFolder = new File(mDefaultBackupPath);
+        Map<String, byte[]> beforeMap = new TreeMap<>();
+        readTree(defaultBackupFolder, defaultBackupFolder, beforeMap);
+
+        File engineDir = new File(mWorkDir, ENGINE_REFERENCE);
+        runEngine(ENGINE_REFERENCE, getFixtureProject(), engineDir);
+
+        Map<String, byte[]> afterMap = new TreeMap<>();
+        readTree(defaultBackupFolder, defaultBackupFolder, afterMap);
+        assertEquals(beforeMap.keySet(), afterMap.keySet());
+        assertTrue(new File(getBackupFolder(engineDir), "main/res/drawable/orphan_img.xml").exists());
+    }
+
+    private File getFixtureProject() throws URISyntaxException {
+        return Paths.get(getClass().getResource("/fixture/app/src/main").toURI()).toFile();
+    }
+
+    /**
+     * run every engine on a copy of project and fail if any differs from the reference engine
+     * - removed resources, the files left behind and where each remaining resource is referenced ("why") must match
+     * - shards + merge must find the same unused resources as the reference engine's 1st pass
+     * @return reference engine's result
+     */
+    private VerifyResult verifyEngines(File project) throws IOException {
+        VerifyResult referenceResult = null;
+        StringBuilder sb = new StringBuilder("VERIFY " + project + "\n");
+        // first run is only to warm up the JVM so the reference engine isn't timed cold
+        for (int i = -1; i < ENGINES.length; i++) {
+            String engine = ENGINES[Math.max(i, 0)];
+            File engineDir = new File(mWorkDir, engine + i);
+            VerifyResult result = runEngine(engine, project, engineDir);
+            if (i < 0) {
+                continue;
+            } else if (referenceResult == null) {
+                referenceResult = result;
+                sb.append(engine).append(", ").append(result.timeMs).append("ms, 1.00x\n");
+                continue;
+            }
+            List<String> diffList = compareResults(referenceResult, result);
+            assertTrue(diffList.isEmpty(), engine + " differs from " + ENGINE_REFERENCE + ": " + diffList);
+            String speedup = String.format("%.2fx", (double) referenceResult.timeMs / Math.max(result.timeMs, 1));
+            sb.append(engine).append(", ").append(result.timeMs).append("ms, ").append(speedup).append('\n');
+        }
+
+        long startMs = System.currentTimeMillis();
+        Set<String> unusedSet = new TreeSet<>(runShards(project, new File(mWorkDir, ENGINE_SHARD), NUM_SHARDS));
+        long timeMs = System.currentTimeMillis() - startMs;
+        Set<String> referenceUnusedSet = new TreeSet<>();
+        int pass1 = referenceResult.passList.indexOf("PASS 1");
+        for (int i = pass1 + 1; i < referenceResult.passList.size() && !referenceResult.passList.get(i).startsWith("PASS "); i++) {
+            referenceUnusedSet.add(referenceResult.passList.get(i));
+        }
+        assertEquals(referenceUnusedSet, unusedSet, ENGINE_SHARD + " differs from " + ENGINE_REFERENCE + " (1st pass)");
+        sb.append(ENGINE_SHARD).append(' ').append(NUM_SHARDS).append(" + merge, ").append(timeMs).append("ms, 1 pass\n");
+
+        System.out.print(sb);
+        return referenceResult;
+    }
+
+    /**
+     * copy project to engineDir, search each of numShards shards (writing partial files) and merge them
+     * @return unused resources found by merge
+     */
+    private static List<String> runShards(File project, File engineDir, int numShards) throws IOException {
+        File projectDir = project.getAbsoluteFile();
+        copyRecursive(projectDir.getParentFile(), engineDir);
+        String root = new File(engineDir, projectDir.getName()).getPath();
+        // partial files go outside the project so they aren't searched
+        File shardDir = new File(engineDir.getPath() + "-partial");
+        assertTrue(shardDir.mkdirs());
+
+        List<String> argList = new ArrayList<>(Arrays.asList("merge", root));
+        PrintStream out = System.out;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            for (int i = 0; i < numShards; i++) {
+                FindUnusedResources.resetState();
+                FindUnusedResources.mShardIndex = i;
+                FindUnusedResources.mShardCount = numShards;
+                FindUnusedResources.mShardOutPath = new File(shardDir, "shard-" + i + ".refs").getPath();
+                FindUnusedResources.indexResources(root);
+                FindUnusedResources.writePartialFile(root, new ArrayList<>());
+                argList.add(FindUnusedResources.mShardOutPath);
+            }
+            FindUnusedResources.resetState();
+            FindUnusedResources.mShardCount = 0;
+            FindUnusedResources.mergePartialFiles(argList.toArray(new String[0]));
+        } finally {
+            System.setOut(out);
+        }
+        return FindUnusedResources.getResourceIds(true);
+    }
+
+    /**
+     * @return where removed files are backed up when running an engine in engineDir
+     */
+    private static File getBackupFolder(File engineDir) {
+        return new File(engineDir.getPath() + "-backup");
+    }
+
+    /**
+     * copy project to engineDir and remove all unused resources (no prompting) using the given engine
+     * NOTE: every run gets it's own backup folder; the user's backups are never touched and a previous run's backups
+     * can't get in the way (backup folder is only cleared at the top level)
+     */
+    private static VerifyResult runEngine(String engine, File project, File engineDir) throws IOException {
+        // the whole tree above <project> is indexed and searched, so copy all of it
+        File projectDir = project.getAbsoluteFile();
+        copyRecursive(projectDir.getParentFile(), engineDir);
+        String root = new File(engineDir, projectDir.getName()).getPath();
+
+        FindUnusedResources.resetState();
+        FindUnusedResources.mBackupPath = getBackupFolder(engineDir).getPath() + "/";
+        FindUnusedResources.mIsPipeline = engine.contains(ENGINE_PIPELINE);
+        FindUnusedResources.mMaxHeapIndex = engine.contains(ENGINE_BOUNDED) ? MAX_HEAP_INDEX : 0;
+
+        PrintStream out = System.out;
+        long startMs = System.currentTimeMillis();
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            FindUnusedResources.indexResources(root);
+            FindUnusedResources.removeUnusedResources(root, new ArrayList<>(), false);
+        } finally {
+            System.setOut(out);
+        }
+
+        VerifyResult result = new VerifyResult();
+        result.timeMs = System.currentTimeMillis() - startMs;
+        result.removedList.addAll(FindUnusedResources.mRemovedResourceList);
+        result.removedList.removeIf(removed -> removed.startsWith("PASS "));
+        result.passList.addAll(FindUnusedResources.mRemovedResourceList);
+        readTree(engineDir, engineDir, result.fileMap);
+        // where each remaining resource is referenced, from the last pass's search
+        for (String resourceId : FindUnusedResources.getResourceIds(false)) {
+            List<String> locationList = new ArrayList<>(FindUnusedResources.getWhyLocations(resourceId));
+            Collections.sort(locationList);
+            result.whyMap.put(resourceId, locationList);
+        }
+        return result;
+    }
+
+    /**
+     * @return list of differences between the reference result and another engine's result
+     */
+    private static List<String> compareResults(VerifyResult reference, VerifyResult result) {
+        List<String> diffList = new ArrayList<>();
+        if (!reference.passList.equals(result.passList)) {
+            Set<String> missingSet = new TreeSet<>(reference.removedList);
+            missingSet.removeAll(result.removedList);
+            Set<String> extraSet = new TreeSet<>(result.removedList);
+            extraSet.removeAll(reference.removedList);
+            for (String resourceId : missingSet) {
+                diffList.add("not removed: " + resourceId);
+            }
+            for (String resourceId : extraSet) {
+                diffList.add("removed by mistake: " + resourceId);
+            }
+            if (missingSet.isEmpty() && extraSet.isEmpty()) {
+                diffList.add("same resources removed, but in different passes");
+            }
+        }
+        Set<String> pathSet = new TreeSet<>(reference.fileMap.keySet());
+        pathSet.addAll(result.fileMap.keySet());
+        for (String path : pathSet) {
+            byte[] referenceBytes = reference.fileMap.get(path);
+            byte[] resultBytes = result.fileMap.get(path);
+            if (referenceBytes == null) {
+                diffList.add("file not deleted: " + path);
+            } else if (resultBytes == null) {
+                diffList.add("file deleted by mistake: " + path);
+            } else if (!Arrays.equals(referenceBytes, resultBytes)) {
+                diffList.add("file contents differ: " + path);
+            }
+        }
+        Set<String> resourceIdSet = new TreeSet<>(reference.whyMap.keySet());
+        resourceIdSet.addAll(result.whyMap.keySet());
+        for (String resourceId : resourceIdSet) {
+            List<String> referenceList = reference.whyMap.get(resourceId);
+            List<String> resultList = result.whyMap.get(resourceId);
+            if (!Objects.equals(referenceList, resultList)) {
+                diffList.add("why " + resourceId + ": " + resultList + " instead of: " + referenceList);
+            }
+        }
+        return diffList;
+    }
+
+    private static class VerifyResult {
+        long timeMs;
+        // <type>/<name> of each resource removed
+        final List<String> removedList = new ArrayList<>();
+        // same, with "PASS <n>" before each pass
+        final List<String> passList = new ArrayList<>();
+        // relative path -> file contents left after removing everything
+        final Map<String, byte[]> fileMap = new TreeMap<>();
+        // <type>/<name> -> "<file><TAB><line>" of each reference, sorted
+        final Map<String, List<String>> whyMap = new TreeMap<>();
+    }
+
+    private static void readTree(File baseDir, File dir, Map<String, byte[]> fileMap) throws IOException {
+        File[] fileArr = dir.listFiles();
+        if (fileArr == null) {
+            return;
+        }
+        for (File file : fileArr) {
+            if (file.isDirectory()) {
+                readTree(baseDir, file, fileMap);
+            } else {
+                fileMap.put(baseDir.toPath().relativize(file.toPath()).toString(), Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+
+    private static void copyRecursive(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            if (!to.exists() && !to.mkdirs()) {
+                throw new IOException("unable to create: " + to);
+            }
+            File[] fileArr = from.listFiles();
+            if (fileArr != null) {
+                for (File file : fileArr) {
+                    copyRecursive(file, new File(to, file.getName()));
+                }
+            }
+        } else {
+            Files.copy(from.toPath(), to.toPath());
+        }
+    }
+
+    /**
+     * generate an Android project with numResources of each resource type, referenced in all the ways searched for:
+     * java/kotlin code (R.type.name, view binding, getIdentifier), xml (@type/name, <include>, style parents),
+     * along with the tricky cases: commented out code, names that are a prefix of another name, 2 references on 1 line,
+     * multi-line entries and resources only used by other unused resources (removed in a later pass)
+     * @return path to generated project (where AndroidManifest.xml is)
+     */
+    private static File generateProject(File dir, int numResources, long seed) throws IOException {
+        Random random = new Random(seed);
+        File root = new File(dir, "app/src/main");
+        File valuesDir = new File(root, "res/values");
+        File drawableDir = new File(root, "res/drawable");
+        File drawableHdpiDir = new File(root, "res/drawable-hdpi");
+        File layoutDir = new File(root, "res/layout");
+        File codeDir = new File(root, "java/com/example");
+        for (File d : new File[]{valuesDir, drawableDir, drawableHdpiDir, layoutDir, codeDir}) {
+            if (!d.mkdirs()) {
+                throw new IOException("unable to create: " + d);
+            }
+        }
+
+        // code that references resources; each line is added to a java or kotlin file at random
+        List<String> codeList = new ArrayList<>();
+        // xml lines that reference resources; added to layouts at random
+        List<String> xmlList = new ArrayList<>();
+
+        StringBuilder values = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+        for (int i = 0; i < numResources; i++) {
+            // multi-line strings are also deleted
+            if (random.nextInt(10) == 0) {
+                values.append("    <string name=\"text_").append(i).append("\">line 1\n    line 2</string>\n");
+            } else {
+                values.append("    <string name=\"text_").append(i).append("\">text ").append(i).append("</string>\n");
+            }
+            values.append("    <dimen name=\"margin_").append(i).append("\">").append(i).append("dp</dimen>\n");
+            values.append("    <color name=\"color_").append(i).append("\">#").append(String.format("%06X", random.nextInt(0xFFFFFF))).append("</color>\n");
+            if (random.nextInt(3) == 0) {
+                values.append("    <string-array name=\"list_").append(i).append("\"/>\n");
+            } else {
+                values.append("    <string-array name=\"list_").append(i).append("\">\n        <item>@string/text_").append(random.nextInt(numResources)).append("</item>\n    </string-array>\n");
+            }
+            // styles inherit by parent="" or by name (Style_1.Child)
+            values.append("    <style name=\"Style_").append(i).append("\"");
+            if (i > 0 && random.nextBoolean()) {
+                values.append(" parent=\"").append(random.nextBoolean() ? "@style/" : "").append("Style_").append(random.nextInt(i)).append("\"");
+            }
+            values.append(">\n        <item name=\"android:textColor\">@color/color_").append(random.nextInt(numResources)).append("</item>\n    </style>\n");
+            if (random.nextInt(4) == 0) {
+                values.append("    <style name=\"Style_").append(i).append(".Child\">\n    </style>\n");
+            }
+
+            // drawables: png, 9-patch and xml in different folders
+            String drawable = "icon_" + i;
+            int drawableType = random.nextInt(3);
+            if (drawableType == 0) {
+                Files.write(new File(drawableDir, drawable + ".png").toPath(), new byte[]{(byte) 0x89, 'P', 'N', 'G', (byte) i});
+            } else if (drawableType == 1) {
+                Files.write(new File(drawableHdpiDir, drawable + ".9.png").toPath(), new byte[]{(byte) 0x89, 'P', 'N', 'G', (byte) i});
+            } else {
+                Files.write(new File(drawableDir, drawable + ".xml").toPath(), ("<shape>\n    <solid android:color=\"@color/color_" + random.nextInt(numResources) + "\"/>\n</shape>\n").getBytes());
+            }
+
+            // reference some of each type
+            addGeneratedReference(random, codeList, xmlList, "string", "text_" + i);
+            addGeneratedReference(random, codeList, xmlList, "dimen", "margin_" + i);
+            addGeneratedReference(random, codeList, xmlList, "color", "color_" + i);
+            addGeneratedReference(random, codeList, xmlList, "array", "list_" + i);
+            addGeneratedReference(random, codeList, xmlList, "style", "Style_" + i);
+            addGeneratedReference(random, codeList, xmlList, "drawable", drawable);
+        }
+        values.append("</resources>\n");
+        Files.write(new File(valuesDir, "values.xml").toPath(), values.toString().getBytes());
+
+        // resources looked up by name
+        for (String country : new String[]{"us", "de", "fr"}) {
+            Files.write(new File(drawableDir, "flag_" + country + ".xml").toPath(), "<shape/>\n".getBytes());
+        }
+        codeList.add("int flagId = getResources().getIdentifier(\"flag_\" + country, \"drawable\", getPackageName());");
+
+        // layouts; each one references some of the xml lines above so unused layouts leave unused resources behind
+        int numLayouts = Math.max(1, numResources / 4);
+        List<List<String>> layoutList = new ArrayList<>();
+        for (int i = 0; i < numLayouts; i++) {
+            layoutList.add(new ArrayList<>());
+        }
+        for (String xml : xmlList) {
+            layoutList.get(random.nextInt(numLayouts)).add(xml);
+        }
+        for (int i = 0; i < numLayouts; i++) {
+            String layout = "screen_" + i;
+            StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<LinearLayout>\n");
+            for (String xml : layoutList.get(i)) {
+                sb.append("    ").append(xml).append('\n');
+            }
+            if (i > 0 && random.nextInt(4) == 0) {
+                sb.append("    <include layout=\"@layout/screen_").append(random.nextInt(i)).append("\"/>\n");
+            }
+            sb.append("</LinearLayout>\n");
+            Files.write(new File(layoutDir, layout + ".xml").toPath(), sb.toString().getBytes());
+
+            int use = random.nextInt(4);
+            if (use == 0) {
+                codeList.add("setContentView(R.layout." + layout + ");");
+            } else if (use == 1) {
+                codeList.add("binding = " + FindUnusedResources.toViewBindingName(layout) + ".inflate(inflater);");
+            }
+        }
+
+        // spread code across java & kotlin files
+        Collections.shuffle(codeList, random);
+        int numCodeFiles = Math.max(1, codeList.size() / 50);
+        for (int i = 0; i < numCodeFiles; i++) {
+            boolean isKotlin = i % 2 == 1;
+            StringBuilder sb = new StringBuilder("package com.example;\n\nclass Screen" + i + " {\n    void bind() {\n");
+            for (int j = i; j < codeList.size(); j += numCodeFiles) {
+                sb.append("        ").append(codeList.get(j)).append('\n');
+            }
+            sb.append("    }\n}\n");
+            Files.write(new File(codeDir, "Screen" + i + (isKotlin ? ".kt" : ".java")).toPath(), sb.toString().getBytes());
+        }
+
+        Files.write(new File(root, "AndroidManifest.xml").toPath(), ("<manifest>\n    <application android:label=\"@string/text_0\" android:icon=\"@drawable/icon_0\" android:theme=\"@style/Style_0\"/>\n</manifest>\n").getBytes());
+        return root;
+    }
+
+    /**
+     * reference resource <type>/<name> from code, from xml, from commented out code or not at all
+     */
+    private static void addGeneratedReference(Random random, List<String> codeList, List<String> xmlList, String type, String name) {
+        // in code, "Style_1.Child" is R.style.Style_1_Child
+        String codeName = name.replace('.', '_');
+        switch (random.nextInt(7)) {
+            case 0:
+                codeList.add("use(R." + type + "." + codeName + ");");
+                break;
+            case 1:
+                // 2 references on the same line
+                codeList.add("use(isChecked ? R." + type + "." + codeName + " : R." + type + "." + codeName + "_other);");
+                break;
+            case 2:
+                codeList.add("// use(R." + type + "." + codeName + ");");
+                break;
+            case 3:
+            case 4:
+                xmlList.add("<View android:tag=\"@" + type + "/" + name + "\"/>");
+                break;
+            default:
+                // unused
+                break;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.x;
+class Main {
+    void a() {
+        setContentView(R.layout.activity_main);
+        getString(R.string.used_java);
+        getStringArray(R.array.arr);
+        int id = getResources().getIdentifier("flag_" + code, "drawable", pkg);
+        int langId = getResources().getIdentifier("lang_" + String.format("%s", code), "drawable", pkg);
+        int tabId = getResources().getIdentifier("tab_" + tabs.getOrDefault(key, "x"), "drawable", pkg);
+        int badgeId = getResources().getIdentifier("badge_" + level, type, pkg);
+        // R.string.unused_one
+    }
+}